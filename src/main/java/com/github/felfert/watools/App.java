@@ -17,9 +17,13 @@ package com.github.felfert.watools;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 
+import java.nio.charset.StandardCharsets;
+
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -48,6 +52,8 @@ import org.kohsuke.args4j.ParserProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.sqlite.SQLiteConfig;
+
 import com.whatsapp.MediaData;
 
 /**
@@ -55,6 +61,8 @@ import com.whatsapp.MediaData;
  */
 public class App {
     private static final Logger LOGGER = LoggerFactory.getLogger(App.class);
+    private static final long MAX_CACHESIZE = Long.MAX_VALUE >> 20;
+    private static final int MAX_THREADS = 64;
     
     @Option(name = "-h", aliases = {"--help"}, usage = "Print this help")
     private boolean help;
@@ -74,6 +82,16 @@ public class App {
     @Option(name = "-c", aliases = {"--crypto"}, usage = "Specify crypto version if not deductable by file extension")
     private WhatsAppCryptoVersion wcversion;
 
+    @Option(name = "-C", aliases = {"--cachedir"}, usage = "Cache decrypted databases in the specified directory")
+    private File cachedir;
+
+    @Option(name = "-S", aliases = {"--cachesize"}, usage = "Specify cache size limit in MiB (default: 1024)")
+    private long cachesize = 1024;
+
+    @Option(name = "-p", aliases = {"--parallel"},
+            usage = "Decrypt crypt12 files using the specified number of threads")
+    private int threads;
+
     @Argument
     private List<String> arguments = new ArrayList<>();
 
@@ -120,10 +138,16 @@ public class App {
         return getArg(error);
     }*/
 
-    private int decrypt(@Nonnull final File outfile) throws IOException {
+    /**
+     * Decrypts the database specified by the next positional argument.
+     * @param outfile The output file. If {@code null}, a temporary file or a cache entry is used.
+     * @return The path of the decrypted database or {@code null} on error.
+     */
+    @Nullable
+    private Path decrypt(@Nullable final File outfile) throws IOException {
         String dbfileName = getArg("Missing positional dbfile argument");
         if (null == dbfileName) {
-            return 1;
+            return null;
         }
         File dbfile = new File(dbfileName);
         if (null == wcversion) {
@@ -131,26 +155,60 @@ public class App {
                 wcversion = WhatsAppCryptoVersion.fromFile(dbfile);
             } catch (IllegalArgumentException x) {
                 System.err.println("Mandatory crypto version option is missing");
-                return 1;
+                return null;
             }
         }
-        WhatsAppCryptoInputStream wcs = null;
+        byte[] keyMaterial = null;
         if (wcversion.equals(WhatsAppCryptoVersion.CRYPT5)) {
             if (null == account) {
                 System.err.println("Required account parameter is missing");
-                return 1;
+                return null;
             }
-            wcs = new WhatsAppCryptoInputStream(dbfile, account);
+            keyMaterial = account.getBytes(StandardCharsets.UTF_8);
         } else {
             if (null == keyfile) {
                 System.err.println("Required key file parameter is missing");
-                return 1;
+                return null;
             }
-            wcs = new WhatsAppCryptoInputStream(dbfile, wcversion, keyfile);
+            keyMaterial = WhatsAppCryptoInputStream.getKeyMaterialFromFile(keyfile);
         }
-        LOGGER.debug("{}", wcs);
-        Files.copy(wcs, outfile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        return 0;
+        if (null != cachedir) {
+            final DecryptionCache cache = new DecryptionCache(cachedir, cachesize * 1024 * 1024);
+            final String key = cache.getKey(dbfile, wcversion, keyMaterial);
+            Path plain = cache.lookup(key);
+            if (null == plain) {
+                try (InputStream wcs = new WhatsAppCryptoInputStream(new FileInputStream(dbfile),
+                            wcversion, keyMaterial, threads)) {
+                    LOGGER.debug("{}", wcs);
+                    plain = cache.store(key, wcs);
+                }
+            }
+            if (null == outfile) {
+                return plain;
+            }
+            Files.copy(plain, outfile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return outfile.toPath();
+        }
+        Path out = null;
+        if (null == outfile) {
+            out = Files.createTempFile("wa", ".db",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            out.toFile().deleteOnExit();
+        } else {
+            out = outfile.toPath();
+        }
+        try (InputStream wcs = new WhatsAppCryptoInputStream(new FileInputStream(dbfile), wcversion,
+                    keyMaterial, threads)) {
+            LOGGER.debug("{}", wcs);
+            try {
+                Files.copy(wcs, out, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException x) {
+                // Do not leave unauthenticated or partial plaintext behind
+                Files.deleteIfExists(out);
+                throw x;
+            }
+        }
+        return out;
     }
 
     @Nullable
@@ -174,6 +232,14 @@ public class App {
 
         try {
             parser.parseArgument(args);
+            if (cachesize <= 0 || cachesize > MAX_CACHESIZE) {
+                System.err.println("Cache size must be greater than 0 and at most " + MAX_CACHESIZE);
+                return 1;
+            }
+            if (threads < 0 || threads > MAX_THREADS) {
+                System.err.println("Number of threads must be between 0 and " + MAX_THREADS);
+                return 1;
+            }
             if (debug) {
                 final ch.qos.logback.classic.Logger root =
                     (ch.qos.logback.classic.Logger)LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
@@ -205,10 +271,10 @@ public class App {
             if (null != action) {
                 switch (action) {
                     case DECRYPT:
-                        System.out.println("decrypt [-k keyfile|-a account] dbfile outfile");
+                        System.out.println("decrypt [-k keyfile|-a account] [-C cachedir] [-p threads] dbfile outfile");
                         break;
                     case EXTRACTMEDIA:
-                        System.out.println("extractmedia [-k keyfile|-a account] dbfile");
+                        System.out.println("extractmedia [-k keyfile|-a account] [-C cachedir] [-p threads] dbfile");
                         break;
                     default:
                         break;
@@ -227,15 +293,15 @@ public class App {
                 if (null == outfileName) {
                     return 1;
                 }
-                return decrypt(new File(outfileName));
+                return (null == decrypt(new File(outfileName))) ? 1 : 0;
             case EXTRACTMEDIA:
-                File tmpdb = Files.createTempFile("wa", ".db",
-                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))).toFile();
-                tmpdb.deleteOnExit();
-                int ret = decrypt(tmpdb);
-                if (0 == ret) {
-                    String jdbcurl = "jdbc:sqlite:" + tmpdb.getAbsolutePath();
-                    try (Connection conn = DriverManager.getConnection(jdbcurl);
+                Path plaindb = decrypt(null);
+                if (null != plaindb) {
+                    String jdbcurl = "jdbc:sqlite:" + plaindb.toAbsolutePath();
+                    // Read-only, so that cache entries are never modified and no journal files are created
+                    final SQLiteConfig config = new SQLiteConfig();
+                    config.setReadOnly(true);
+                    try (Connection conn = DriverManager.getConnection(jdbcurl, config.toProperties());
                             Statement st = conn.createStatement()) {
                         try (ResultSet rs = st.executeQuery("select * from messages where media_mime_type != ''")) {
                             while (rs.next()) {
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2016 Fritz Elfert
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.felfert.watools;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local on-disk cache of decrypted WhatsApp databases.
+ * <p>Entries are keyed by a cheap fingerprint of the encrypted file (size, modification time
+ * and a sampled digest of its content) combined with the crypto version and key material.
+ * Whenever the total size of all entries exceeds the configured budget, the least recently
+ * used entries are evicted.</p>
+ */
+public class DecryptionCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DecryptionCache.class);
+
+    private static final String SUFFIX = ".db";
+    private static final String TMPSUFFIX = ".tmp";
+    private static final long STALE_TMP_AGE = 3600 * 1000L;
+    private static final int SAMPLE_SIZE = 4096;
+    private static final int SAMPLE_COUNT = 16;
+
+    private final Path dir;
+    private final long budget;
+
+    /**
+     * Creates a new instance.
+     * @param cachedir The directory holding the cache entries. It is created if necessary.
+     * @param budget The maximum total size of all entries in bytes, which must be greater than 0.
+     * @throws IOException if the cache directory can not be created.
+     */
+    public DecryptionCache(@Nonnull final File cachedir, final long budget) throws IOException {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Cache budget must be greater than 0");
+        }
+        dir = cachedir.toPath();
+        this.budget = budget;
+        if (!Files.isDirectory(dir)) {
+            Files.createDirectories(dir,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        }
+        removeStaleTempFiles();
+    }
+
+    /**
+     * Calculates the cache key of an encrypted database.
+     * @param infile The encrypted database file.
+     * @param v The version of encryption.
+     * @param keyMaterial The key material used for decryption.
+     * @return The cache key.
+     * @throws IOException if the encrypted file can not be read.
+     */
+    @Nonnull
+    public String getKey(@Nonnull final File infile, @Nonnull final WhatsAppCryptoVersion v,
+            @Nonnull final byte[] keyMaterial) throws IOException {
+        final MessageDigest md = getSHA256();
+        md.update(v.name().getBytes(StandardCharsets.UTF_8));
+        md.update(getSHA256().digest(keyMaterial));
+        try (RandomAccessFile raf = new RandomAccessFile(infile, "r")) {
+            final long size = raf.length();
+            md.update(ByteBuffer.allocate(16).putLong(size).putLong(infile.lastModified()).array());
+            final byte[] buf = new byte[SAMPLE_SIZE];
+            // Samples are evenly spaced, the first one covering the header and the last one the trailer.
+            final long span = Math.max(0, size - SAMPLE_SIZE);
+            for (int i = 0; i < SAMPLE_COUNT; i++) {
+                md.update(buf, 0, readAt(raf, span * i / (SAMPLE_COUNT - 1), buf, SAMPLE_SIZE));
+            }
+        }
+        return DatatypeConverter.printHexBinary(md.digest()).toLowerCase();
+    }
+
+    /**
+     * Looks up a cache entry and marks it as recently used.
+     * @param key The cache key as returned by {@link #getKey(File, WhatsAppCryptoVersion, byte[])}.
+     * @return The path of the decrypted database or {@code null}, if no such entry exists.
+     * @throws IOException if the entry can not be updated.
+     */
+    @Nullable
+    public Path lookup(@Nonnull final String key) throws IOException {
+        final Path entry = dir.resolve(key + SUFFIX);
+        if (!Files.isRegularFile(entry)) {
+            LOGGER.debug("Cache miss for {}", key);
+            return null;
+        }
+        LOGGER.debug("Cache hit for {}", key);
+        Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        return entry;
+    }
+
+    /**
+     * Stores a new cache entry and evicts old entries if the budget is exceeded.
+     * @param key The cache key as returned by {@link #getKey(File, WhatsAppCryptoVersion, byte[])}.
+     * @param is The decrypted content.
+     * @return The path of the decrypted database.
+     * @throws IOException if the entry can not be written.
+     */
+    @Nonnull
+    public Path store(@Nonnull final String key, @Nonnull final InputStream is) throws IOException {
+        final Path entry = dir.resolve(key + SUFFIX);
+        final Path tmp = Files.createTempFile(dir, "wa", TMPSUFFIX,
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        try {
+            // Writing into the existing file preserves its permissions
+            try (OutputStream os = Files.newOutputStream(tmp)) {
+                final byte[] buf = new byte[65536];
+                int r;
+                while ((r = is.read(buf)) >= 0) {
+                    os.write(buf, 0, r);
+                }
+            }
+            Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        evict(entry);
+        return entry;
+    }
+
+    private void evict(@Nonnull final Path keep) throws IOException {
+        final List<Path> entries = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path p : ds) {
+                try {
+                    total += Files.size(p);
+                    entries.add(p);
+                } catch (NoSuchFileException x) {
+                    // Already evicted by a concurrent run
+                    continue;
+                }
+            }
+        }
+        Collections.sort(entries, new Comparator<Path>() {
+            @Override
+            public int compare(final Path a, final Path b) {
+                return Long.compare(a.toFile().lastModified(), b.toFile().lastModified());
+            }
+        });
+        for (Path p : entries) {
+            if (total <= budget) {
+                break;
+            }
+            if (!p.equals(keep)) {
+                try {
+                    final long size = Files.size(p);
+                    LOGGER.debug("Evicting {}", p);
+                    Files.delete(p);
+                    total -= size;
+                } catch (NoSuchFileException x) {
+                    // Already evicted by a concurrent run, so its size is unknown now
+                    continue;
+                }
+            }
+        }
+        if (total > budget) {
+            LOGGER.warn("Cache size {} exceeds budget of {} bytes", total, budget);
+        }
+    }
+
+    /**
+     * Removes temporary files left behind by crashed runs.
+     * <p>Files which are still being written by a concurrent run are younger than {@link #STALE_TMP_AGE}.</p>
+     */
+    private void removeStaleTempFiles() throws IOException {
+        final long limit = System.currentTimeMillis() - STALE_TMP_AGE;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "wa*" + TMPSUFFIX)) {
+            for (Path p : ds) {
+                if (p.toFile().lastModified() < limit) {
+                    LOGGER.debug("Removing stale {}", p);
+                    Files.deleteIfExists(p);
+                }
+            }
+        }
+    }
+
+    private static int readAt(@Nonnull final RandomAccessFile raf, final long pos, @Nonnull final byte[] buf,
+            final int len) throws IOException {
+        raf.seek(pos);
+        int idx = 0;
+        while (idx < len) {
+            int r = raf.read(buf, idx, len - idx);
+            if (r < 0) {
+                break;
+            }
+            idx += r;
+        }
+        return idx;
+    }
+
+    @Nonnull
+    private static MessageDigest getSHA256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            // Per SPEC, Java >= 7 comes with builtin SHA-256
+            throw new IllegalStateException("Should never happen", x);
+        }
+    }
+}
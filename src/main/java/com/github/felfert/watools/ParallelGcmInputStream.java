@@ -0,0 +1,386 @@
+/*
+ * Copyright 2016 Fritz Elfert
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.felfert.watools;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchProviderException;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.modes.gcm.Tables4kGCMMultiplier;
+
+/**
+ * An InputStream implementation decrypting AES-GCM ciphertext on multiple threads.
+ * <p>Since GCM is counter mode, the ciphertext is split into chunks which are decrypted
+ * independently using AES/CTR. The GHASH over the ciphertext is calculated on a separate
+ * thread and the authentication tag is verified after the last chunk has been read or
+ * when {@link #finish()} is called. AES/CTR is taken from the JDK provider if available,
+ * because it uses hardware AES instructions.
+ * The input is expected to end with the 16 byte tag followed by the 20 byte
+ * footer of a {@link WhatsAppCryptoVersion#CRYPT12} file.</p>
+ */
+class ParallelGcmInputStream extends InputStream {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int BLOCK_SIZE = 16;
+    private static final int TAG_SIZE = 16;
+    private static final int TRAILER_SIZE = TAG_SIZE + 20;
+    private static final String AESCTR = "AES/CTR/NoPadding";
+    private static final String JDK_PROVIDER = "SunJCE";
+
+    private final InputStream in;
+    private final SecretKeySpec key;
+    private final byte[] j0;
+    private final byte[] encryptedJ0;
+    private final GHash ghash;
+    private final int depth;
+    private final ExecutorService decryptors;
+    private final ExecutorService hasher;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final Deque<Future<?>> hashing = new ArrayDeque<>();
+
+    private byte[] carry = new byte[0];
+    private long blocks;
+    private long length;
+    private boolean eof;
+    private boolean verified;
+    private boolean closed;
+    private Future<byte[]> tag;
+    private byte[] current = new byte[0];
+    private int pos;
+
+    /**
+     * Creates a new instance.
+     * @param indata The underlying encrypted input stream, positioned after the header.
+     * @param key The AES key.
+     * @param iv The GCM IV, which must be 16 bytes long.
+     * @param threads The number of decryption threads.
+     * @throws IOException if initialization fails.
+     */
+    ParallelGcmInputStream(@Nonnull final InputStream indata, @Nonnull final byte[] key,
+            @Nonnull final byte[] iv, final int threads) throws IOException {
+        if (BLOCK_SIZE != iv.length) {
+            // J0 of a 96 bit IV is not derived by GHASH, but CRYPT12 never uses one.
+            throw new IllegalArgumentException("IV must be 16 bytes long");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        in = indata;
+        this.key = new SecretKeySpec(key, "AES");
+        // H is the encrypted zero block.
+        final byte[] h = encryptBlock(new byte[BLOCK_SIZE]);
+        ghash = new GHash(h);
+        j0 = deriveJ0(h, iv);
+        encryptedJ0 = encryptBlock(j0);
+        depth = 2 * threads;
+        decryptors = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("decrypt"));
+        hasher = Executors.newSingleThreadExecutor(new DaemonThreadFactory("ghash"));
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (0 == len) {
+            return 0;
+        }
+        while (pos == current.length) {
+            if (!next()) {
+                verify();
+                return -1;
+            }
+        }
+        final int n = Math.min(len, current.length - pos);
+        System.arraycopy(current, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current.length - pos;
+    }
+
+    /**
+     * Reads and discards the remaining ciphertext and verifies the authentication tag.
+     * <p>This must be called by readers which stop before reaching EOF, e.g. because
+     * the deflate stream within the plaintext has ended. Closing the stream does not
+     * verify the tag.</p>
+     * @throws IOException if reading fails or the authentication tag does not match.
+     */
+    void finish() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (next()) {
+            continue;
+        }
+        verify();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        decryptors.shutdownNow();
+        hasher.shutdownNow();
+        in.close();
+    }
+
+    private boolean next() throws IOException {
+        fill();
+        final Future<byte[]> f = pending.poll();
+        if (null == f) {
+            return false;
+        }
+        current = get(f);
+        pos = 0;
+        return true;
+    }
+
+    private void fill() throws IOException {
+        while (!eof && pending.size() < depth) {
+            final byte[] buf = Arrays.copyOf(carry, CHUNK_SIZE + TRAILER_SIZE);
+            int len = carry.length;
+            while (len < buf.length) {
+                int r = in.read(buf, len, buf.length - len);
+                if (r < 0) {
+                    eof = true;
+                    break;
+                }
+                len += r;
+            }
+            if (len < TRAILER_SIZE) {
+                throw new IOException("Premature EOF while reading trailer");
+            }
+            // The trailer is held back until the next chunk has been read.
+            final int n = len - TRAILER_SIZE;
+            carry = Arrays.copyOfRange(buf, n, len);
+            dispatch(buf, n);
+        }
+    }
+
+    private void dispatch(@Nonnull final byte[] buf, final int len) throws IOException {
+        final long first = blocks;
+        blocks += len / BLOCK_SIZE;
+        length += len;
+        pending.add(decryptors.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return decryptChunk(buf, len, first);
+            }
+        }));
+        // GHASH is serial, so limit the number of chunks waiting for it.
+        while (hashing.size() >= depth) {
+            get(hashing.poll());
+        }
+        hashing.add(hasher.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                ghash.update(buf, 0, len);
+                return null;
+            }
+        }));
+        if (eof) {
+            final long total = length;
+            tag = hasher.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    final byte[] t = ghash.finish(total);
+                    for (int i = 0; i < TAG_SIZE; i++) {
+                        t[i] ^= encryptedJ0[i];
+                    }
+                    return t;
+                }
+            });
+        }
+    }
+
+    private void verify() throws IOException {
+        if (!verified) {
+            if (null == tag) {
+                throw new IOException("Premature EOF while reading trailer");
+            }
+            if (!MessageDigest.isEqual(get(tag), Arrays.copyOf(carry, TAG_SIZE))) {
+                throw new IOException("Authentication tag mismatch");
+            }
+            verified = true;
+        }
+    }
+
+    @Nonnull
+    private byte[] decryptChunk(@Nonnull final byte[] buf, final int len, final long first) throws IOException {
+        final byte[] out = new byte[len];
+        // GCM increments the lower 32 bits of the counter only, while CTR carries into the upper bits.
+        final int ctr = getInt(j0, 12) + 1 + (int)first;
+        final long untilWrap = (0x100000000L - (ctr & 0xffffffffL)) * BLOCK_SIZE;
+        final int split = (int)Math.min(len, untilWrap);
+        crypt(buf, 0, split, out, ctr);
+        if (split < len) {
+            crypt(buf, split, len - split, out, 0);
+        }
+        return out;
+    }
+
+    private void crypt(@Nonnull final byte[] src, final int off, final int len, @Nonnull final byte[] dst,
+            final int ctr) throws IOException {
+        final byte[] iv = Arrays.copyOf(j0, BLOCK_SIZE);
+        iv[12] = (byte)(ctr >>> 24);
+        iv[13] = (byte)(ctr >>> 16);
+        iv[14] = (byte)(ctr >>> 8);
+        iv[15] = (byte)ctr;
+        try {
+            final Cipher cipher = getCtrCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+            cipher.doFinal(src, off, len, dst, off);
+        } catch (GeneralSecurityException x) {
+            throw new IOException("Could not decrypt chunk", x);
+        }
+    }
+
+    @Nonnull
+    private static Cipher getCtrCipher() throws GeneralSecurityException {
+        // The custom provider may have been inserted before the JDK provider.
+        try {
+            return Cipher.getInstance(AESCTR, JDK_PROVIDER);
+        } catch (NoSuchProviderException x) {
+            return Cipher.getInstance(AESCTR);
+        }
+    }
+
+    @Nonnull
+    private byte[] encryptBlock(@Nonnull final byte[] block) throws IOException {
+        try {
+            final Cipher cipher = getCtrCipher();
+            // Encrypting a zero block in CTR mode yields the encrypted counter.
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(block));
+            return cipher.doFinal(new byte[BLOCK_SIZE]);
+        } catch (GeneralSecurityException x) {
+            throw new IOException("Could not initialize decryption", x);
+        }
+    }
+
+    private static <T> T get(@Nonnull final Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decrypting");
+        } catch (ExecutionException x) {
+            if (x.getCause() instanceof IOException) {
+                throw (IOException)x.getCause();
+            }
+            throw new IOException("Decryption failed", x.getCause());
+        }
+    }
+
+    /**
+     * Derives the pre-counter block J0 from an IV which is not 96 bits long.
+     * @param h The hash subkey.
+     * @param iv The IV.
+     * @return J0.
+     */
+    @Nonnull
+    static byte[] deriveJ0(@Nonnull final byte[] h, @Nonnull final byte[] iv) {
+        final GHash ivhash = new GHash(h);
+        ivhash.update(iv, 0, iv.length);
+        return ivhash.finish(iv.length);
+    }
+
+    static int getInt(@Nonnull final byte[] b, final int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+            | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    /**
+     * The GHASH function of GCM without additional authenticated data.
+     */
+    private static final class GHash {
+        private final Tables4kGCMMultiplier multiplier = new Tables4kGCMMultiplier();
+        private final byte[] x = new byte[BLOCK_SIZE];
+
+        GHash(@Nonnull final byte[] h) {
+            multiplier.init(h);
+        }
+
+        void update(@Nonnull final byte[] buf, final int off, final int len) {
+            for (int i = 0; i < len; i += BLOCK_SIZE) {
+                final int n = Math.min(BLOCK_SIZE, len - i);
+                for (int j = 0; j < n; j++) {
+                    x[j] ^= buf[off + i + j];
+                }
+                multiplier.multiplyH(x);
+            }
+        }
+
+        @Nonnull
+        byte[] finish(final long len) {
+            final long bits = len * 8;
+            final byte[] lb = new byte[BLOCK_SIZE];
+            for (int i = 0; i < 8; i++) {
+                lb[BLOCK_SIZE - 1 - i] = (byte)(bits >>> (8 * i));
+            }
+            update(lb, 0, BLOCK_SIZE);
+            return Arrays.copyOf(x, BLOCK_SIZE);
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(@Nonnull final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(@Nonnull final Runnable r) {
+            final Thread t = new Thread(r, "watools-" + prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
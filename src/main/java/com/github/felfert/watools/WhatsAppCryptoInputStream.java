@@ -115,7 +115,25 @@ public class WhatsAppCryptoInputStream extends FilterInputStream {
      */
     public WhatsAppCryptoInputStream(@Nonnull final InputStream indata, WhatsAppCryptoVersion v,
             @Nonnull final byte[] keyMaterial) throws IOException {
-        super(setup(indata, v, keyMaterial));
+        this(indata, v, keyMaterial, 0);
+    }
+
+    /**
+     * Creates a new instance from a database file and keyMaterial.
+     * @param indata The underlying encrypted input stream.
+     * @param v The version of encryption.
+     * @param keyMaterial The key material to use.
+     * <p>In case of {@link WhatsAppCryptoVersion#CRYPT5}, this is the account name. Otherwise it is
+     * the content of the key file which should always be 158 bytes.</p>
+     * @param threads The number of threads for decrypting {@link WhatsAppCryptoVersion#CRYPT12}.
+     * <p>If greater than 0, the ciphertext is decrypted in chunks on that many threads, while
+     * decompression stays on the reading thread. The authentication tag is verified as well.
+     * Ignored for all other versions.</p>
+     * @throws IOException if initialization fails.
+     */
+    public WhatsAppCryptoInputStream(@Nonnull final InputStream indata, WhatsAppCryptoVersion v,
+            @Nonnull final byte[] keyMaterial, final int threads) throws IOException {
+        super(setup(indata, v, keyMaterial, threads));
     }
 
     private static final byte[] BASE5KEY =
@@ -125,7 +143,7 @@ public class WhatsAppCryptoInputStream extends FilterInputStream {
     private static final String AESGCM = "AES/GCM/NoPadding";
 
     private static InputStream setup(@Nonnull final InputStream indata, WhatsAppCryptoVersion v,
-            @Nonnull final byte[] keyMaterial) throws IOException {
+            @Nonnull final byte[] keyMaterial, final int threads) throws IOException {
         byte[] key;
         byte[] iv;
         switch (v) {
@@ -152,6 +170,10 @@ public class WhatsAppCryptoInputStream extends FilterInputStream {
                 checkKeyMaterial(keyMaterial, 158);
                 key = Arrays.copyOfRange(keyMaterial, 126, 158);
                 iv = getIvFromInput(indata, keyMaterial);
+                if (threads > 0) {
+                    LOGGER.debug("Using parallel {} on {} threads", AESGCM, threads);
+                    return new VerifyingInflaterInputStream(new ParallelGcmInputStream(indata, key, iv, threads));
+                }
                 return new InflaterInputStream(new CipherInputStream(indata,
                             createCipher(AESGCM, key, iv)), new Inflater(false));
             default:
@@ -159,6 +181,29 @@ public class WhatsAppCryptoInputStream extends FilterInputStream {
         }
     }
 
+    /**
+     * An InflaterInputStream which verifies the authentication tag before signalling EOF.
+     * <p>Inflating stops at the end of the deflate stream, so the reader would otherwise
+     * see EOF before the trailer of the ciphertext has been read.</p>
+     */
+    private static final class VerifyingInflaterInputStream extends InflaterInputStream {
+        private final ParallelGcmInputStream gcm;
+
+        VerifyingInflaterInputStream(@Nonnull final ParallelGcmInputStream gcm) {
+            super(gcm, new Inflater(false), 65536);
+            this.gcm = gcm;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int ret = super.read(b, off, len);
+            if (ret < 0) {
+                gcm.finish();
+            }
+            return ret;
+        }
+    }
+
     @Nonnull
     private static Cipher createCipher(@Nonnull final String spec, @Nonnull final byte[] key,
             @Nonnull final byte[] iv) throws IOException {
@@ -218,7 +263,7 @@ public class WhatsAppCryptoInputStream extends FilterInputStream {
     }
 
     @Nonnull
-    private static byte[] getKeyMaterialFromFile(@Nonnull final File keyfile) throws IOException {
+    static byte[] getKeyMaterialFromFile(@Nonnull final File keyfile) throws IOException {
         if (!keyfile.canRead()) {
             throw new IOException("Key file can not be read");
         }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Fritz Elfert
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.felfert.watools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Compares the throughput of serial and parallel CRYPT12 decryption.
+ * <p>Run after {@code mvn test-compile} with:</p>
+ * <pre>
+ * mvn exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.github.felfert.watools.Crypt12Benchmark -Dexec.args="256 5"
+ * </pre>
+ * <p>The arguments are the plaintext size in MiB and the number of rounds. The best round
+ * is reported, in MB/s of ciphertext and of plaintext.</p>
+ */
+public final class Crypt12Benchmark {
+
+    private static final int[] THREADS = {0, 1, 2, 4, 8};
+
+    private Crypt12Benchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int mib = (args.length > 0) ? Integer.parseInt(args[0]) : 256;
+        final int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        final Random rnd = new Random(1);
+        final byte[] km = new byte[158];
+        rnd.nextBytes(km);
+        final byte[] plain = new byte[mib * 1024 * 1024];
+        rnd.nextBytes(plain);
+        // Roughly the compression ratio of a message database
+        for (int i = 0; i < plain.length; i++) {
+            plain[i] = (byte)('a' + (plain[i] & 7));
+        }
+        final byte[] crypt12 = createCrypt12(km, plain, rnd);
+        System.out.println(String.format("%d MiB plaintext, %d bytes ciphertext, %d CPUs", mib, crypt12.length,
+                    Runtime.getRuntime().availableProcessors()));
+        for (int threads : THREADS) {
+            double best = Double.MAX_VALUE;
+            for (int r = 0; r < rounds; r++) {
+                final long start = System.nanoTime();
+                long n = 0;
+                try (InputStream is = new WhatsAppCryptoInputStream(new ByteArrayInputStream(crypt12),
+                            WhatsAppCryptoVersion.CRYPT12, km, threads)) {
+                    final byte[] buf = new byte[65536];
+                    int len;
+                    while ((len = is.read(buf)) >= 0) {
+                        n += len;
+                    }
+                }
+                if (n != plain.length) {
+                    throw new IllegalStateException("Plaintext size mismatch");
+                }
+                best = Math.min(best, (System.nanoTime() - start) / 1e9);
+            }
+            System.out.println(String.format("%s: %.1f MB/s ciphertext, %.1f MB/s plaintext",
+                        (0 == threads) ? "serial   " : String.format("%d threads", threads),
+                        crypt12.length / best / 1e6, plain.length / best / 1e6));
+        }
+    }
+
+    private static byte[] createCrypt12(final byte[] km, final byte[] plain, final Random rnd) throws Exception {
+        final byte[] header = new byte[67];
+        rnd.nextBytes(header);
+        System.arraycopy(km, 30, header, 3, 32);
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (DeflaterOutputStream dos = new DeflaterOutputStream(deflated)) {
+            dos.write(plain);
+        }
+        final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Arrays.copyOfRange(km, 126, 158), "AES"),
+                new GCMParameterSpec(128, Arrays.copyOfRange(header, 51, 67)));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header);
+        out.write(cipher.doFinal(deflated.toByteArray()));
+        out.write(new byte[20]);
+        return out.toByteArray();
+    }
+}
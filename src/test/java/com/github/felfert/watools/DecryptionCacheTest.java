@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Fritz Elfert
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.felfert.watools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DecryptionCacheTest {
+
+    private static final int ENTRY_SIZE = 1000;
+
+    private Path tmpdir;
+    private File cachedir;
+
+    @Before
+    public void setUp() throws IOException {
+        tmpdir = Files.createTempDirectory("watools");
+        cachedir = tmpdir.resolve("cache").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        delete(tmpdir);
+    }
+
+    @Test
+    public void testKey() throws IOException {
+        final DecryptionCache cache = new DecryptionCache(cachedir, ENTRY_SIZE);
+        final byte[] km = randomBytes(158, 1);
+        final File f = tmpdir.resolve("msgstore.db.crypt12").toFile();
+        final byte[] data = randomBytes(100000, 2);
+        Files.write(f.toPath(), data);
+        final FileTime mtime = Files.getLastModifiedTime(f.toPath());
+
+        final String key = cache.getKey(f, WhatsAppCryptoVersion.CRYPT12, km);
+        assertEquals(key, cache.getKey(f, WhatsAppCryptoVersion.CRYPT12, km));
+        assertNotEquals(key, cache.getKey(f, WhatsAppCryptoVersion.CRYPT8, km));
+        assertNotEquals(key, cache.getKey(f, WhatsAppCryptoVersion.CRYPT12, randomBytes(158, 3)));
+
+        // Changes in the header and trailer are detected even if size and mtime are unchanged.
+        data[10] ^= 1;
+        Files.write(f.toPath(), data);
+        Files.setLastModifiedTime(f.toPath(), mtime);
+        final String headerKey = cache.getKey(f, WhatsAppCryptoVersion.CRYPT12, km);
+        assertNotEquals(key, headerKey);
+        data[data.length - 1] ^= 1;
+        Files.write(f.toPath(), data);
+        Files.setLastModifiedTime(f.toPath(), mtime);
+        assertNotEquals(headerKey, cache.getKey(f, WhatsAppCryptoVersion.CRYPT12, km));
+    }
+
+    @Test
+    public void testStoreAndLookup() throws IOException {
+        final DecryptionCache cache = new DecryptionCache(cachedir, ENTRY_SIZE);
+        assertNull(cache.lookup("a"));
+        final byte[] data = randomBytes(ENTRY_SIZE, 1);
+        final Path p = cache.store("a", new ByteArrayInputStream(data));
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(p)));
+        assertEquals(p, cache.lookup("a"));
+        assertArrayEquals(data, Files.readAllBytes(p));
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws IOException {
+        final DecryptionCache cache = new DecryptionCache(cachedir, 2 * ENTRY_SIZE);
+        final long now = System.currentTimeMillis();
+        final Path a = cache.store("a", new ByteArrayInputStream(randomBytes(ENTRY_SIZE, 1)));
+        Files.setLastModifiedTime(a, FileTime.fromMillis(now - 20000));
+        final Path b = cache.store("b", new ByteArrayInputStream(randomBytes(ENTRY_SIZE, 2)));
+        Files.setLastModifiedTime(b, FileTime.fromMillis(now - 10000));
+        // Using a makes b the least recently used entry.
+        assertNotNull(cache.lookup("a"));
+        final Path c = cache.store("c", new ByteArrayInputStream(randomBytes(ENTRY_SIZE, 3)));
+        assertTrue(Files.exists(a));
+        assertFalse(Files.exists(b));
+        assertTrue(Files.exists(c));
+        assertNull(cache.lookup("b"));
+    }
+
+    @Test
+    public void testRemoveStaleTempFiles() throws IOException {
+        new DecryptionCache(cachedir, ENTRY_SIZE);
+        final Path stale = Files.createTempFile(cachedir.toPath(), "wa", ".tmp");
+        Files.setLastModifiedTime(stale, FileTime.fromMillis(System.currentTimeMillis() - 7200 * 1000L));
+        final Path active = Files.createTempFile(cachedir.toPath(), "wa", ".tmp");
+        new DecryptionCache(cachedir, ENTRY_SIZE);
+        assertFalse(Files.exists(stale));
+        assertTrue(Files.exists(active));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBudget() throws IOException {
+        new DecryptionCache(cachedir, 0);
+    }
+
+    private static byte[] randomBytes(final int size, final long seed) {
+        final byte[] ret = new byte[size];
+        new Random(seed).nextBytes(ret);
+        return ret;
+    }
+
+    private static void delete(final Path p) throws IOException {
+        if (Files.isDirectory(p)) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(p)) {
+                for (Path c : ds) {
+                    delete(c);
+                }
+            }
+        }
+        Files.deleteIfExists(p);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Fritz Elfert
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.felfert.watools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelGcmInputStreamTest {
+
+    private static final int FOOTER_SIZE = 20;
+
+    // Found by searching random IVs for the key below: the 32 bit counter wraps after 2532 blocks.
+    private static final byte[] WRAPPING_IV = DatatypeConverter.parseHexBinary("96027b675e4e36f42b8f50f73e8e6b01");
+
+    @Test
+    public void testDecrypt() throws Exception {
+        final byte[] key = randomBytes(32, 1);
+        final byte[] iv = randomBytes(16, 2);
+        // Not a multiple of the chunk or block size
+        final byte[] plain = randomBytes(3 * 1024 * 1024 + 12345, 3);
+        final byte[] body = encrypt(key, iv, plain);
+        assertArrayEquals(plain, decrypt(body, key, iv, 1));
+        assertArrayEquals(plain, decrypt(body, key, iv, 3));
+    }
+
+    @Test
+    public void testDecryptSmall() throws Exception {
+        final byte[] key = randomBytes(32, 1);
+        final byte[] iv = randomBytes(16, 2);
+        for (int size : new int[] {0, 1, 15, 16, 17, 1024 * 1024}) {
+            final byte[] plain = randomBytes(size, size);
+            assertArrayEquals(plain, decrypt(encrypt(key, iv, plain), key, iv, 2));
+        }
+    }
+
+    @Test
+    public void testCounterWrap() throws Exception {
+        final byte[] key = randomBytes(32, 1);
+        final Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+        ecb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+        final byte[] j0 = ParallelGcmInputStream.deriveJ0(ecb.doFinal(new byte[16]), WRAPPING_IV);
+        final long ctr = ParallelGcmInputStream.getInt(j0, 12) & 0xffffffffL;
+        final byte[] plain = randomBytes(2 * 1024 * 1024 + 7, 4);
+        assertTrue("Counter does not wrap", ctr + plain.length / 16 > 0xffffffffL);
+        final byte[] body = encrypt(key, WRAPPING_IV, plain);
+        assertArrayEquals(plain, decrypt(body, key, WRAPPING_IV, 1));
+        assertArrayEquals(plain, decrypt(body, key, WRAPPING_IV, 3));
+    }
+
+    @Test
+    public void testTampered() throws Exception {
+        final byte[] key = randomBytes(32, 1);
+        final byte[] iv = randomBytes(16, 2);
+        final byte[] plain = randomBytes(2 * 1024 * 1024 + 100, 5);
+        final byte[] body = encrypt(key, iv, plain);
+        // Flip a bit in the first chunk, in the last chunk and in the tag.
+        for (int pos : new int[] {0, plain.length - 1, plain.length + 3}) {
+            final byte[] bad = Arrays.copyOf(body, body.length);
+            bad[pos] ^= 1;
+            try {
+                decrypt(bad, key, iv, 2);
+                fail("Tampering at " + pos + " not detected");
+            } catch (IOException x) {
+                assertEquals("Authentication tag mismatch", x.getMessage());
+            }
+        }
+        // The footer is not authenticated
+        final byte[] footer = Arrays.copyOf(body, body.length);
+        footer[footer.length - 1] ^= 1;
+        assertArrayEquals(plain, decrypt(footer, key, iv, 2));
+    }
+
+    @Test
+    public void testTamperedOnFinish() throws Exception {
+        final byte[] key = randomBytes(32, 1);
+        final byte[] iv = randomBytes(16, 2);
+        final byte[] body = encrypt(key, iv, randomBytes(100000, 6));
+        body[body.length - FOOTER_SIZE - 1] ^= 1;
+        try (ParallelGcmInputStream is = new ParallelGcmInputStream(new ByteArrayInputStream(body), key, iv, 2)) {
+            assertEquals(1000, is.read(new byte[1000]));
+            is.finish();
+            fail("Tampering not detected on finish");
+        } catch (IOException x) {
+            assertEquals("Authentication tag mismatch", x.getMessage());
+        }
+    }
+
+    @Test
+    public void testCloseDoesNotDrain() throws Exception {
+        final byte[] key = randomBytes(32, 1);
+        final byte[] iv = randomBytes(16, 2);
+        final byte[] body = encrypt(key, iv, randomBytes(8 * 1024 * 1024, 7));
+        body[body.length - FOOTER_SIZE - 1] ^= 1;
+        final ByteArrayInputStream bis = new ByteArrayInputStream(body);
+        final InputStream is = new ParallelGcmInputStream(bis, key, iv, 1);
+        assertEquals(1000, is.read(new byte[1000]));
+        is.close();
+        assertTrue("Input drained on close", bis.available() > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShortIv() throws Exception {
+        new ParallelGcmInputStream(new ByteArrayInputStream(new byte[100]), randomBytes(32, 1), new byte[12], 1);
+    }
+
+    @Test
+    public void testTruncatedTrailer() throws Exception {
+        final byte[] key = randomBytes(32, 1);
+        final byte[] iv = randomBytes(16, 2);
+        final InputStream is = new ParallelGcmInputStream(new ByteArrayInputStream(new byte[10]), key, iv, 2);
+        try {
+            is.read();
+            fail("Truncated trailer not detected");
+        } catch (IOException x) {
+            assertEquals("Premature EOF while reading trailer", x.getMessage());
+        }
+        is.close();
+    }
+
+    /**
+     * Encrypts like WhatsApp: ciphertext, GCM tag and a footer of 20 bytes.
+     */
+    private static byte[] encrypt(final byte[] key, final byte[] iv, final byte[] plain) throws Exception {
+        final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, iv));
+        final byte[] ct = cipher.doFinal(plain);
+        final byte[] ret = Arrays.copyOf(ct, ct.length + FOOTER_SIZE);
+        Arrays.fill(ret, ct.length, ret.length, (byte)0x55);
+        return ret;
+    }
+
+    private static byte[] decrypt(final byte[] body, final byte[] key, final byte[] iv, final int threads)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream is = new ParallelGcmInputStream(new ByteArrayInputStream(body), key, iv, threads)) {
+            final byte[] buf = new byte[10000];
+            int r;
+            while ((r = is.read(buf)) >= 0) {
+                out.write(buf, 0, r);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(final int size, final long seed) {
+        final byte[] ret = new byte[size];
+        new Random(seed).nextBytes(ret);
+        return ret;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Fritz Elfert
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.felfert.watools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WhatsAppCryptoInputStreamTest {
+
+    private static final int HEADER_SIZE = 67;
+    private static final int FOOTER_SIZE = 20;
+
+    @Test
+    public void testCrypt12() throws Exception {
+        final byte[] km = randomBytes(158, 1);
+        final byte[] plain = compressibleBytes(3 * 1024 * 1024 + 99, 2);
+        final byte[] crypt12 = createCrypt12(km, plain);
+        assertArrayEquals(plain, decrypt(crypt12, km, 0));
+        assertArrayEquals(plain, decrypt(crypt12, km, 1));
+        assertArrayEquals(plain, decrypt(crypt12, km, 3));
+    }
+
+    @Test
+    public void testCrypt12TamperedTag() throws Exception {
+        final byte[] km = randomBytes(158, 1);
+        final byte[] crypt12 = createCrypt12(km, compressibleBytes(100000, 3));
+        crypt12[crypt12.length - FOOTER_SIZE - 1] ^= 1;
+        // The tag must be verified before EOF is signalled, although inflating ends earlier.
+        final InputStream is = new WhatsAppCryptoInputStream(new ByteArrayInputStream(crypt12),
+                WhatsAppCryptoVersion.CRYPT12, km, 2);
+        try {
+            final byte[] buf = new byte[10000];
+            while (is.read(buf) >= 0) {
+                continue;
+            }
+            fail("Tampering not detected");
+        } catch (IOException x) {
+            assertEquals("Authentication tag mismatch", x.getMessage());
+        }
+        is.close();
+    }
+
+    @Test
+    public void testCrypt12InvalidDeflate() throws Exception {
+        final byte[] km = randomBytes(158, 1);
+        // Random data is not a valid deflate stream, so the inflater fails long before the end.
+        final byte[] crypt12 = encryptCrypt12(km, randomBytes(8 * 1024 * 1024, 5));
+        final ByteArrayInputStream bis = new ByteArrayInputStream(crypt12);
+        final InputStream is = new WhatsAppCryptoInputStream(bis, WhatsAppCryptoVersion.CRYPT12, km, 1);
+        try {
+            final byte[] buf = new byte[10000];
+            while (is.read(buf) >= 0) {
+                continue;
+            }
+            fail("Invalid deflate stream not detected");
+        } catch (ZipException x) {
+            // Closing after the error must neither drain the input nor verify the tag.
+            is.close();
+            assertTrue("Input drained on close", bis.available() > 0);
+        }
+    }
+
+    private static byte[] createCrypt12(final byte[] km, final byte[] plain) throws Exception {
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (DeflaterOutputStream dos = new DeflaterOutputStream(deflated)) {
+            dos.write(plain);
+        }
+        return encryptCrypt12(km, deflated.toByteArray());
+    }
+
+    private static byte[] encryptCrypt12(final byte[] km, final byte[] deflated) throws Exception {
+        final byte[] header = randomBytes(HEADER_SIZE, 4);
+        System.arraycopy(km, 30, header, 3, 32);
+        final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Arrays.copyOfRange(km, 126, 158), "AES"),
+                new GCMParameterSpec(128, Arrays.copyOfRange(header, 51, 67)));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header);
+        out.write(cipher.doFinal(deflated));
+        out.write(new byte[FOOTER_SIZE]);
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(final byte[] crypt12, final byte[] km, final int threads) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream is = new WhatsAppCryptoInputStream(new ByteArrayInputStream(crypt12),
+                    WhatsAppCryptoVersion.CRYPT12, km, threads)) {
+            final byte[] buf = new byte[10000];
+            int r;
+            while ((r = is.read(buf)) >= 0) {
+                out.write(buf, 0, r);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] compressibleBytes(final int size, final long seed) {
+        final byte[] ret = randomBytes(size, seed);
+        for (int i = 0; i < size; i++) {
+            ret[i] = (byte)('a' + (ret[i] & 7));
+        }
+        return ret;
+    }
+
+    private static byte[] randomBytes(final int size, final long seed) {
+        final byte[] ret = new byte[size];
+        new Random(seed).nextBytes(ret);
+        return ret;
+    }
+}